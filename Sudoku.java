@@ -1,3 +1,9 @@
+import java.util.ArrayDeque;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 public class Sudoku {
 
     // Thrown when input string is not in the correct format
@@ -29,9 +35,118 @@ public class Sudoku {
         }
     }
 
+    // Extra unit of a variant (diagonal, window or killer cage)
+    class SudokuUnit {
+        // Cells of the unit as {row, col}, values within a unit are all different
+        int[][] cells;
+
+        // Required sum of the values in the unit, 0 if the unit has no sum
+        int sum;
+
+        // Every set of distinct values that can fill the unit as a bitmask, bit n set meaning n is used
+        int[] combos;
+
+        SudokuUnit(int[][] cells, int sum) {
+            this.cells = cells;
+            this.sum = sum;
+            // Precomputes the feasible combinations so propagation only has to filter them
+            int[] found = new int[1 << 9];
+            int numCombos = 0;
+            for (int mask = 0; mask < (1 << 10); mask += 2) {
+                if (Integer.bitCount(mask) != cells.length) continue;
+                int total = 0;
+                for (int n = 1; n <= 9; n++) {
+                    if ((mask & (1 << n)) != 0) total += n;
+                }
+                if (sum == 0 || total == sum) found[numCombos++] = mask;
+            }
+            this.combos = new int[numCombos];
+            System.arraycopy(found, 0, this.combos, 0, numCombos);
+        }
+    }
+
+    // Resumable depth-first search over the solutions of a board, yields each solution as row-major values
+    class SudokuSearch implements Spliterator<int[]> {
+        // Boards still to be explored, the next one on top
+        ArrayDeque<Sudoku> pending;
+
+        SudokuSearch(ArrayDeque<Sudoku> pending) {
+            this.pending = pending;
+        }
+
+        public boolean tryAdvance(Consumer<? super int[]> action) {
+            while (!this.pending.isEmpty()) {
+                Sudoku sudoku = this.pending.pop();
+                int cell;
+                try {
+                    cell = sudoku.propagate();
+                } catch (SudokuUnsolvable u) {
+                    // Dead end
+                    continue;
+                }
+                if (cell == -1) {
+                    action.accept(sudoku.values());
+                    return true;
+                }
+                expand(sudoku, cell);
+            }
+            return false;
+        }
+
+        // Hands over the bottom half of the stack, which holds the shallowest and so largest subtrees
+        public Spliterator<int[]> trySplit() {
+            while (this.pending.size() == 1) {
+                // Nothing to share yet, branch the only board first
+                Sudoku sudoku = this.pending.peek();
+                int cell;
+                try {
+                    cell = sudoku.propagate();
+                } catch (SudokuUnsolvable u) {
+                    this.pending.pop();
+                    return null;
+                }
+                if (cell == -1) return null;
+                this.pending.pop();
+                expand(sudoku, cell);
+            }
+            if (this.pending.size() < 2) return null;
+            ArrayDeque<Sudoku> half = new ArrayDeque<>();
+            for (int i = this.pending.size() / 2; i > 0; i--) {
+                half.push(this.pending.pollLast());
+            }
+            return new SudokuSearch(half);
+        }
+
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        public int characteristics() {
+            return Spliterator.NONNULL | Spliterator.DISTINCT;
+        }
+
+        // Pushes a board for each possibility of the cell, lowest value on top
+        void expand(Sudoku sudoku, int cell) {
+            int row = cell / 9;
+            int col = cell % 9;
+            for (int n = 9; n >= 1; n--) {
+                if (sudoku.board[row][col].pStates[n]) this.pending.push(sudoku.fork(row, col, n));
+            }
+        }
+    }
+
     // The Sudoku board
     SudokuNode[][] board;
 
+    // Extra units on top of rows, columns and blocks, empty for classic Sudoku
+    SudokuUnit[] units;
+
+    // Extra units each cell belongs to, null for classic Sudoku
+    SudokuUnit[][][] cellUnits;
+
+    // Parity constraint of each cell, 1 if odd, 2 if even, 0 if none, null if no cell has one
+    int[][] parity;
+
     // Solve data
     // 114 on empty board
     int n_constrainFixScout;
@@ -56,9 +171,87 @@ public class Sudoku {
             this.n_scanFix = 0;
             this.n_branch = 0;
         }
+        this.units = new SudokuUnit[0];
     }
 
+    // Adds an extra unit whose cells must all be different, cells given as {row, col}
+    public void addUnit(int[][] cells) {
+        addUnit(cells, 0);
+    }
 
+    // Adds a killer cage whose cells must all be different and add up to sum
+    public void addCage(int sum, int[][] cells) {
+        if (sum <= 0) throw new SudokuFormatError();
+        addUnit(cells, sum);
+    }
+
+    // Adds the two main diagonals as units (X-Sudoku)
+    public void addDiagonals() {
+        int[][] diagonal = new int[9][];
+        int[][] antiDiagonal = new int[9][];
+        for (int i = 0; i < 9; i++) {
+            diagonal[i] = new int[] {i, i};
+            antiDiagonal[i] = new int[] {i, 8 - i};
+        }
+        addUnit(diagonal);
+        addUnit(antiDiagonal);
+    }
+
+    // Adds the four 3x3 windows as units (Windoku)
+    public void addWindows() {
+        for (int i = 1; i < 9; i += 4) {
+            for (int j = 1; j < 9; j += 4) {
+                int[][] window = new int[9][];
+                for (int k = 0; k < 9; k++) {
+                    window[k] = new int[] {i + k / 3, j + k % 3};
+                }
+                addUnit(window);
+            }
+        }
+    }
+
+    // Restricts a cell to odd values if odd, else to even values
+    public void addParity(int row, int col, boolean odd) {
+        if (row < 0 || row >= 9 || col < 0 || col >= 9) throw new SudokuFormatError();
+        int value = this.board[row][col].value;
+        if (value != 0 && (value % 2 == 1) != odd) throw new SudokuFormatError();
+        if (this.parity == null) this.parity = new int[9][9];
+        this.parity[row][col] = odd ? 1 : 2;
+        for (int n = odd ? 2 : 1; n <= 9; n += 2) {
+            this.board[row][col].pStates[n] = false;
+        }
+    }
+
+    // Validates cells and registers them as a unit with the given sum, 0 for no sum
+    void addUnit(int[][] cells, int sum) {
+        if (cells.length < 1 || cells.length > 9) throw new SudokuFormatError();
+        boolean[][] seen = new boolean[9][9];
+        for (int[] cell : cells) {
+            if (cell.length != 2 || cell[0] < 0 || cell[0] >= 9 || cell[1] < 0 || cell[1] >= 9) throw new SudokuFormatError();
+            if (seen[cell[0]][cell[1]]) throw new SudokuFormatError();
+            seen[cell[0]][cell[1]] = true;
+        }
+        SudokuUnit unit = new SudokuUnit(cells, sum);
+        SudokuUnit[] units = new SudokuUnit[this.units.length + 1];
+        System.arraycopy(this.units, 0, units, 0, this.units.length);
+        units[this.units.length] = unit;
+        this.units = units;
+        if (this.cellUnits == null) {
+            this.cellUnits = new SudokuUnit[9][9][];
+            for (int row = 0; row < 9; row++) {
+                for (int col = 0; col < 9; col++) {
+                    this.cellUnits[row][col] = new SudokuUnit[0];
+                }
+            }
+        }
+        for (int[] cell : cells) {
+            SudokuUnit[] old = this.cellUnits[cell[0]][cell[1]];
+            SudokuUnit[] joined = new SudokuUnit[old.length + 1];
+            System.arraycopy(old, 0, joined, 0, old.length);
+            joined[old.length] = unit;
+            this.cellUnits[cell[0]][cell[1]] = joined;
+        }
+    }
 
     // Checks if a Sudoku is complete and correct
     public boolean verifyComplete() {
@@ -101,6 +294,28 @@ public class Sudoku {
                 }
             }
         }
+        // Check extra units
+        for (SudokuUnit unit : this.units) {
+            int seen = 0;
+            int total = 0;
+            for (int[] cell : unit.cells) {
+                int value = this.board[cell[0]][cell[1]].value;
+                if (value == 0 || (seen & (1 << value)) != 0) return false;
+                seen |= 1 << value;
+                total += value;
+            }
+            if (unit.sum != 0 && total != unit.sum) return false;
+        }
+        // Check parity
+        if (this.parity != null) {
+            for (int row = 0; row < 9; row++) {
+                for (int col = 0; col < 9; col++) {
+                    int value = this.board[row][col].value;
+                    if (this.parity[row][col] == 1 && value % 2 == 0) return false;
+                    if (this.parity[row][col] == 2 && value % 2 == 1) return false;
+                }
+            }
+        }
         return true;
     }
 
@@ -122,13 +337,41 @@ public class Sudoku {
         System.out.print('\n');
     }
 
+    // Lazily enumerates every solution, each as row-major values, without changing this board
+    public Stream<int[]> solutions() {
+        ArrayDeque<Sudoku> pending = new ArrayDeque<>();
+        pending.push(this.fork());
+        return StreamSupport.stream(new SudokuSearch(pending), false);
+    }
+
+    // Returns the values of the board in row-major order, 0 if blank
+    int[] values() {
+        int[] values = new int[81];
+        for (int row = 0; row < 9; row++) {
+            for (int col = 0; col < 9; col++) {
+                values[row * 9 + col] = this.board[row][col].value;
+            }
+        }
+        return values;
+    }
+
     // Fills the board with a valid solution
     public void solve() throws SudokuUnsolvable {
+        int cell = propagate();
+        if (cell == -1) return;
+        // Deterministic methods no longer make progress, branching required
+        if (branch(cell / 9, cell % 9)) return;
+        else throw new SudokuUnsolvable();
+    }
+
+    // Runs deterministic methods until they no longer make progress, returns -1 if the board is then complete,
+    // else the position (row * 9 + col) of the cell with least possibilities to branch on
+    int propagate() throws SudokuUnsolvable {
         while (true) {
             int usefulness = 0;
             // Finds cell with least number of possibilities that can't be fixed, in case branching is needed
-            int minNumPossibilities = 9;
-            int minRow = 0;
+            int minNumPossibilities = 10;
+            int minRow = -1;
             int minCol = 0;
             for (int row = 0; row < 9; row++) {
                 for (int col = 0; col < 9; col++) {
@@ -143,13 +386,10 @@ public class Sudoku {
             }
             this.n_constrainFixScout++;
             this.n_scanFix++;
-            if (scanFix() == 0 && usefulness == 0) {
-                if (this.verifyComplete()) return;
-                else {
-                    // Deterministic methods no longer make progress, branching required
-                    if (branch(minRow, minCol)) return;
-                    else throw new SudokuUnsolvable();
-                }
+            if (scanFix() + scanFixUnits() == 0 && usefulness == 0) {
+                if (this.verifyComplete()) return -1;
+                else if (minRow == -1) throw new SudokuUnsolvable();
+                else return minRow * 9 + minCol;
             }
 
         }
@@ -169,11 +409,7 @@ public class Sudoku {
         // Tries solve on each possible branch if the previous branch fails
         for (int n = 1; n <= 9; n++) {
             if (this.board[row][col].pStates[n]) {
-                Sudoku clone = this.fork();
-                clone.board[row][col].value = n;
-                for (int m = 1; m <= 9; m++) {
-                    if (m != n) clone.board[row][col].pStates[m] = false;
-                }
+                Sudoku clone = this.fork(row, col, n);
                 try {
                     clone.solve();
                     // Success if program reaches here
@@ -200,12 +436,25 @@ public class Sudoku {
                 }
             }
         }
+        clone.units = this.units;
+        clone.cellUnits = this.cellUnits;
+        clone.parity = this.parity;
         clone.n_constrainFixScout = this.n_constrainFixScout;
         clone.n_scanFix = this.n_scanFix;
         clone.n_branch = this.n_branch + 1;
         return clone;
     }
 
+    // Makes a new Sudoku object with same info, except incremented n_branch and the cell fixed to n
+    Sudoku fork(int row, int col, int n) {
+        Sudoku clone = this.fork();
+        clone.board[row][col].value = n;
+        for (int m = 1; m <= 9; m++) {
+            if (m != n) clone.board[row][col].pStates[m] = false;
+        }
+        return clone;
+    }
+
     // Copies given Sudoku object into this
     void copyBack(Sudoku clone) {
         for (int row = 0; row < 9; row++) {
@@ -242,6 +491,14 @@ public class Sudoku {
                     }
                 }
             }
+            if (this.cellUnits != null) {
+                // Eliminate value from cells in the same extra units
+                for (SudokuUnit unit : this.cellUnits[row][col]) {
+                    for (int[] cell : unit.cells) {
+                        if (cell[0] != row || cell[1] != col) this.board[cell[0]][cell[1]].pStates[value] = false;
+                    }
+                }
+            }
             this.board[row][col].pStates[0] = true;
             return 1;
         } else {
@@ -351,7 +608,86 @@ public class Sudoku {
         return true;
     }
 
+    // Scans extra units to eliminate possibilities and fix values, returns number of changes made.
+    int scanFixUnits() throws SudokuUnsolvable {
+        int changed = 0;
+        for (SudokuUnit unit : this.units) {
+            changed += scanFixUnit(unit);
+        }
+        return changed;
+    }
 
+    // Removes possibilities that fit no remaining combination of the unit, then fixes values every
+    // remaining combination needs if only one cell can take them, returns number of changes made.
+    int scanFixUnit(SudokuUnit unit) throws SudokuUnsolvable {
+        int fixedMask = 0;
+        for (int[] cell : unit.cells) {
+            int value = this.board[cell[0]][cell[1]].value;
+            if (value != 0) {
+                if ((fixedMask & (1 << value)) != 0) throw new SudokuUnsolvable();
+                fixedMask |= 1 << value;
+            }
+        }
+        // A combination remains if it holds the fixed values and every other cell can take one of its values
+        int allowed = 0;
+        int required = ~0;
+        for (int combo : unit.combos) {
+            if ((combo & fixedMask) != fixedMask) continue;
+            boolean fits = true;
+            for (int[] cell : unit.cells) {
+                SudokuNode node = this.board[cell[0]][cell[1]];
+                if (node.value != 0) continue;
+                boolean seenPossibility = false;
+                for (int n = 1; n <= 9; n++) {
+                    if (node.pStates[n] && (combo & ~fixedMask & (1 << n)) != 0) {
+                        seenPossibility = true;
+                        break;
+                    }
+                }
+                if (!seenPossibility) {
+                    fits = false;
+                    break;
+                }
+            }
+            if (fits) {
+                allowed |= combo;
+                required &= combo;
+            }
+        }
+        if (allowed == 0) throw new SudokuUnsolvable();
+        int changed = 0;
+        for (int[] cell : unit.cells) {
+            SudokuNode node = this.board[cell[0]][cell[1]];
+            if (node.value != 0) continue;
+            for (int n = 1; n <= 9; n++) {
+                if (node.pStates[n] && (allowed & (1 << n)) == 0) {
+                    node.pStates[n] = false;
+                    changed++;
+                }
+            }
+        }
+        for (int n = 1; n <= 9; n++) {
+            if ((required & (1 << n)) == 0 || (fixedMask & (1 << n)) != 0) continue;
+            int[] position = null;
+            boolean unique = true;
+            for (int[] cell : unit.cells) {
+                SudokuNode node = this.board[cell[0]][cell[1]];
+                if (node.value == 0 && node.pStates[n]) {
+                    if (position != null) unique = false;
+                    position = cell;
+                }
+            }
+            if (position == null) throw new SudokuUnsolvable();
+            if (!unique) continue;
+            SudokuNode node = this.board[position[0]][position[1]];
+            node.value = n;
+            for (int m = 1; m <= 9; m++) {
+                if (m != n) node.pStates[m] = false;
+            }
+            changed++;
+        }
+        return changed;
+    }
 
 }
 
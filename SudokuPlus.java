@@ -1,3 +1,9 @@
+import java.util.ArrayDeque;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 public class SudokuPlus {
 
     // Thrown when input string is not in the correct format
@@ -29,9 +35,118 @@ public class SudokuPlus {
         }
     }
 
+    // Extra unit of a variant (diagonal, window or killer cage)
+    class SudokuPlusUnit {
+        // Cells of the unit as {row, col}, values within a unit are all different
+        int[][] cells;
+
+        // Required sum of the values in the unit, 0 if the unit has no sum
+        int sum;
+
+        // Every set of distinct values that can fill the unit as a bitmask, bit n set meaning n is used
+        int[] combos;
+
+        SudokuPlusUnit(int[][] cells, int sum) {
+            this.cells = cells;
+            this.sum = sum;
+            // Precomputes the feasible combinations so propagation only has to filter them
+            int[] found = new int[1 << 16];
+            int numCombos = 0;
+            for (int mask = 0; mask < (1 << 17); mask += 2) {
+                if (Integer.bitCount(mask) != cells.length) continue;
+                int total = 0;
+                for (int n = 1; n <= 16; n++) {
+                    if ((mask & (1 << n)) != 0) total += n;
+                }
+                if (sum == 0 || total == sum) found[numCombos++] = mask;
+            }
+            this.combos = new int[numCombos];
+            System.arraycopy(found, 0, this.combos, 0, numCombos);
+        }
+    }
+
+    // Resumable depth-first search over the solutions of a board, yields each solution as row-major values
+    class SudokuPlusSearch implements Spliterator<int[]> {
+        // Boards still to be explored, the next one on top
+        ArrayDeque<SudokuPlus> pending;
+
+        SudokuPlusSearch(ArrayDeque<SudokuPlus> pending) {
+            this.pending = pending;
+        }
+
+        public boolean tryAdvance(Consumer<? super int[]> action) {
+            while (!this.pending.isEmpty()) {
+                SudokuPlus sudoku = this.pending.pop();
+                int cell;
+                try {
+                    cell = sudoku.propagate();
+                } catch (SudokuPlusUnsolvable u) {
+                    // Dead end
+                    continue;
+                }
+                if (cell == -1) {
+                    action.accept(sudoku.values());
+                    return true;
+                }
+                expand(sudoku, cell);
+            }
+            return false;
+        }
+
+        // Hands over the bottom half of the stack, which holds the shallowest and so largest subtrees
+        public Spliterator<int[]> trySplit() {
+            while (this.pending.size() == 1) {
+                // Nothing to share yet, branch the only board first
+                SudokuPlus sudoku = this.pending.peek();
+                int cell;
+                try {
+                    cell = sudoku.propagate();
+                } catch (SudokuPlusUnsolvable u) {
+                    this.pending.pop();
+                    return null;
+                }
+                if (cell == -1) return null;
+                this.pending.pop();
+                expand(sudoku, cell);
+            }
+            if (this.pending.size() < 2) return null;
+            ArrayDeque<SudokuPlus> half = new ArrayDeque<>();
+            for (int i = this.pending.size() / 2; i > 0; i--) {
+                half.push(this.pending.pollLast());
+            }
+            return new SudokuPlusSearch(half);
+        }
+
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        public int characteristics() {
+            return Spliterator.NONNULL | Spliterator.DISTINCT;
+        }
+
+        // Pushes a board for each possibility of the cell, lowest value on top
+        void expand(SudokuPlus sudoku, int cell) {
+            int row = cell / 16;
+            int col = cell % 16;
+            for (int n = 16; n >= 1; n--) {
+                if (sudoku.board[row][col].pStates[n]) this.pending.push(sudoku.fork(row, col, n));
+            }
+        }
+    }
+
     // The Sudoku board
     SudokuPlusNode[][] board;
 
+    // Extra units on top of rows, columns and blocks, empty for classic Sudoku
+    SudokuPlusUnit[] units;
+
+    // Extra units each cell belongs to, null for classic Sudoku
+    SudokuPlusUnit[][][] cellUnits;
+
+    // Parity constraint of each cell, 1 if odd, 2 if even, 0 if none, null if no cell has one
+    int[][] parity;
+
     // Solve data
     // 403 on empty board
     int n_constrainFixScout;
@@ -58,9 +173,87 @@ public class SudokuPlus {
             this.n_scanFix = 0;
             this.n_branch = 0;
         }
+        this.units = new SudokuPlusUnit[0];
+    }
+
+    // Adds an extra unit whose cells must all be different, cells given as {row, col}
+    public void addUnit(int[][] cells) {
+        addUnit(cells, 0);
+    }
+
+    // Adds a killer cage whose cells must all be different and add up to sum
+    public void addCage(int sum, int[][] cells) {
+        if (sum <= 0) throw new SudokuPlusFormatError();
+        addUnit(cells, sum);
+    }
+
+    // Adds the two main diagonals as units (X-Sudoku)
+    public void addDiagonals() {
+        int[][] diagonal = new int[16][];
+        int[][] antiDiagonal = new int[16][];
+        for (int i = 0; i < 16; i++) {
+            diagonal[i] = new int[] {i, i};
+            antiDiagonal[i] = new int[] {i, 15 - i};
+        }
+        addUnit(diagonal);
+        addUnit(antiDiagonal);
     }
 
+    // Adds the nine 4x4 windows as units (Windoku)
+    public void addWindows() {
+        for (int i = 1; i < 16; i += 5) {
+            for (int j = 1; j < 16; j += 5) {
+                int[][] window = new int[16][];
+                for (int k = 0; k < 16; k++) {
+                    window[k] = new int[] {i + k / 4, j + k % 4};
+                }
+                addUnit(window);
+            }
+        }
+    }
 
+    // Restricts a cell to odd values if odd, else to even values
+    public void addParity(int row, int col, boolean odd) {
+        if (row < 0 || row >= 16 || col < 0 || col >= 16) throw new SudokuPlusFormatError();
+        int value = this.board[row][col].value;
+        if (value != 0 && (value % 2 == 1) != odd) throw new SudokuPlusFormatError();
+        if (this.parity == null) this.parity = new int[16][16];
+        this.parity[row][col] = odd ? 1 : 2;
+        for (int n = odd ? 2 : 1; n <= 16; n += 2) {
+            this.board[row][col].pStates[n] = false;
+        }
+    }
+
+    // Validates cells and registers them as a unit with the given sum, 0 for no sum
+    void addUnit(int[][] cells, int sum) {
+        if (cells.length < 1 || cells.length > 16) throw new SudokuPlusFormatError();
+        boolean[][] seen = new boolean[16][16];
+        for (int[] cell : cells) {
+            if (cell.length != 2 || cell[0] < 0 || cell[0] >= 16 || cell[1] < 0 || cell[1] >= 16) throw new SudokuPlusFormatError();
+            if (seen[cell[0]][cell[1]]) throw new SudokuPlusFormatError();
+            seen[cell[0]][cell[1]] = true;
+        }
+        SudokuPlusUnit unit = new SudokuPlusUnit(cells, sum);
+        SudokuPlusUnit[] units = new SudokuPlusUnit[this.units.length + 1];
+        System.arraycopy(this.units, 0, units, 0, this.units.length);
+        units[this.units.length] = unit;
+        this.units = units;
+        if (this.cellUnits == null) {
+            this.cellUnits = new SudokuPlusUnit[16][16][];
+            for (int row = 0; row < 16; row++) {
+                for (int col = 0; col < 16; col++) {
+                    this.cellUnits[row][col] = new SudokuPlusUnit[0];
+                }
+            }
+        }
+        for (int[] cell : cells) {
+            SudokuPlusUnit[] old = this.cellUnits[cell[0]][cell[1]];
+            SudokuPlusUnit[] joined = new SudokuPlusUnit[old.length + 1];
+            System.arraycopy(old, 0, joined, 0, old.length);
+            joined[old.length] = unit;
+            this.cellUnits[cell[0]][cell[1]] = joined;
+        }
+    }
 
     // Checks if a Sudoku is complete and correct
     public boolean verifyComplete() {
@@ -103,6 +296,28 @@ public class SudokuPlus {
                 }
             }
         }
+        // Check extra units
+        for (SudokuPlusUnit unit : this.units) {
+            int seen = 0;
+            int total = 0;
+            for (int[] cell : unit.cells) {
+                int value = this.board[cell[0]][cell[1]].value;
+                if (value == 0 || (seen & (1 << value)) != 0) return false;
+                seen |= 1 << value;
+                total += value;
+            }
+            if (unit.sum != 0 && total != unit.sum) return false;
+        }
+        // Check parity
+        if (this.parity != null) {
+            for (int row = 0; row < 16; row++) {
+                for (int col = 0; col < 16; col++) {
+                    int value = this.board[row][col].value;
+                    if (this.parity[row][col] == 1 && value % 2 == 0) return false;
+                    if (this.parity[row][col] == 2 && value % 2 == 1) return false;
+                }
+            }
+        }
         return true;
     }
 
@@ -126,13 +341,41 @@ public class SudokuPlus {
         System.out.print('\n');
     }
 
+    // Lazily enumerates every solution, each as row-major values, without changing this board
+    public Stream<int[]> solutions() {
+        ArrayDeque<SudokuPlus> pending = new ArrayDeque<>();
+        pending.push(this.fork());
+        return StreamSupport.stream(new SudokuPlusSearch(pending), false);
+    }
+
+    // Returns the values of the board in row-major order, 0 if blank
+    int[] values() {
+        int[] values = new int[256];
+        for (int row = 0; row < 16; row++) {
+            for (int col = 0; col < 16; col++) {
+                values[row * 16 + col] = this.board[row][col].value;
+            }
+        }
+        return values;
+    }
+
     // Fills the board with a valid solution
     public void solve() throws SudokuPlusUnsolvable {
+        int cell = propagate();
+        if (cell == -1) return;
+        // Deterministic methods no longer make progress, branching required
+        if (branch(cell / 16, cell % 16)) return;
+        else throw new SudokuPlusUnsolvable();
+    }
+
+    // Runs deterministic methods until they no longer make progress, returns -1 if the board is then complete,
+    // else the position (row * 16 + col) of the cell with least possibilities to branch on
+    int propagate() throws SudokuPlusUnsolvable {
         while (true) {
             int usefulness = 0;
             // Finds cell with least number of possibilities that can't be fixed, in case branching is needed
-            int minNumPossibilities = 16;
-            int minRow = 0;
+            int minNumPossibilities = 17;
+            int minRow = -1;
             int minCol = 0;
             for (int row = 0; row < 16; row++) {
                 for (int col = 0; col < 16; col++) {
@@ -147,13 +390,10 @@ public class SudokuPlus {
             }
             this.n_constrainFixScout++;
             this.n_scanFix++;
-            if (scanFix() == 0 && usefulness == 0) {
-                if (this.verifyComplete()) return;
-                else {
-                    // Deterministic methods no longer make progress, branching required
-                    if (branch(minRow, minCol)) return;
-                    else throw new SudokuPlusUnsolvable();
-                }
+            if (scanFix() + scanFixUnits() == 0 && usefulness == 0) {
+                if (this.verifyComplete()) return -1;
+                else if (minRow == -1) throw new SudokuPlusUnsolvable();
+                else return minRow * 16 + minCol;
             }
 
         }
@@ -173,11 +413,7 @@ public class SudokuPlus {
         // Tries solve on each possible branch if the previous branch fails
         for (int n = 1; n <= 16; n++) {
             if (this.board[row][col].pStates[n]) {
-                SudokuPlus clone = this.fork();
-                clone.board[row][col].value = n;
-                for (int m = 1; m <= 16; m++) {
-                    if (m != n) clone.board[row][col].pStates[m] = false;
-                }
+                SudokuPlus clone = this.fork(row, col, n);
                 try {
                     clone.solve();
                     // Success if program reaches here
@@ -204,12 +440,25 @@ public class SudokuPlus {
                 }
             }
         }
+        clone.units = this.units;
+        clone.cellUnits = this.cellUnits;
+        clone.parity = this.parity;
         clone.n_constrainFixScout = this.n_constrainFixScout;
         clone.n_scanFix = this.n_scanFix;
         clone.n_branch = this.n_branch + 1;
         return clone;
     }
 
+    // Makes a new Sudoku object with same info, except incremented n_branch and the cell fixed to n
+    SudokuPlus fork(int row, int col, int n) {
+        SudokuPlus clone = this.fork();
+        clone.board[row][col].value = n;
+        for (int m = 1; m <= 16; m++) {
+            if (m != n) clone.board[row][col].pStates[m] = false;
+        }
+        return clone;
+    }
+
     // Copies given Sudoku object into this
     void copyBack(SudokuPlus clone) {
         for (int row = 0; row < 16; row++) {
@@ -246,6 +495,14 @@ public class SudokuPlus {
                     }
                 }
             }
+            if (this.cellUnits != null) {
+                // Eliminate value from cells in the same extra units
+                for (SudokuPlusUnit unit : this.cellUnits[row][col]) {
+                    for (int[] cell : unit.cells) {
+                        if (cell[0] != row || cell[1] != col) this.board[cell[0]][cell[1]].pStates[value] = false;
+                    }
+                }
+            }
             this.board[row][col].pStates[0] = true;
             return 1;
         } else {
@@ -355,4 +612,85 @@ public class SudokuPlus {
         return true;
     }
 
+    // Scans extra units to eliminate possibilities and fix values, returns number of changes made.
+    int scanFixUnits() throws SudokuPlusUnsolvable {
+        int changed = 0;
+        for (SudokuPlusUnit unit : this.units) {
+            changed += scanFixUnit(unit);
+        }
+        return changed;
+    }
+
+    // Removes possibilities that fit no remaining combination of the unit, then fixes values every
+    // remaining combination needs if only one cell can take them, returns number of changes made.
+    int scanFixUnit(SudokuPlusUnit unit) throws SudokuPlusUnsolvable {
+        int fixedMask = 0;
+        for (int[] cell : unit.cells) {
+            int value = this.board[cell[0]][cell[1]].value;
+            if (value != 0) {
+                if ((fixedMask & (1 << value)) != 0) throw new SudokuPlusUnsolvable();
+                fixedMask |= 1 << value;
+            }
+        }
+        // A combination remains if it holds the fixed values and every other cell can take one of its values
+        int allowed = 0;
+        int required = ~0;
+        for (int combo : unit.combos) {
+            if ((combo & fixedMask) != fixedMask) continue;
+            boolean fits = true;
+            for (int[] cell : unit.cells) {
+                SudokuPlusNode node = this.board[cell[0]][cell[1]];
+                if (node.value != 0) continue;
+                boolean seenPossibility = false;
+                for (int n = 1; n <= 16; n++) {
+                    if (node.pStates[n] && (combo & ~fixedMask & (1 << n)) != 0) {
+                        seenPossibility = true;
+                        break;
+                    }
+                }
+                if (!seenPossibility) {
+                    fits = false;
+                    break;
+                }
+            }
+            if (fits) {
+                allowed |= combo;
+                required &= combo;
+            }
+        }
+        if (allowed == 0) throw new SudokuPlusUnsolvable();
+        int changed = 0;
+        for (int[] cell : unit.cells) {
+            SudokuPlusNode node = this.board[cell[0]][cell[1]];
+            if (node.value != 0) continue;
+            for (int n = 1; n <= 16; n++) {
+                if (node.pStates[n] && (allowed & (1 << n)) == 0) {
+                    node.pStates[n] = false;
+                    changed++;
+                }
+            }
+        }
+        for (int n = 1; n <= 16; n++) {
+            if ((required & (1 << n)) == 0 || (fixedMask & (1 << n)) != 0) continue;
+            int[] position = null;
+            boolean unique = true;
+            for (int[] cell : unit.cells) {
+                SudokuPlusNode node = this.board[cell[0]][cell[1]];
+                if (node.value == 0 && node.pStates[n]) {
+                    if (position != null) unique = false;
+                    position = cell;
+                }
+            }
+            if (position == null) throw new SudokuPlusUnsolvable();
+            if (!unique) continue;
+            SudokuPlusNode node = this.board[position[0]][position[1]];
+            node.value = n;
+            for (int m = 1; m <= 16; m++) {
+                if (m != n) node.pStates[m] = false;
+            }
+            changed++;
+        }
+        return changed;
+    }
+
 }